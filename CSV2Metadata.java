@@ -43,9 +43,11 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  *  Class to read a CSV file with headers and create an XML file
@@ -68,6 +70,8 @@ public class CSV2Metadata {
 
     private static final String XIP_NS = "http://www.tessella.com/XIP/v4";
     private static final String XIPV6_NS = "http://preservica.com/EntityAPI/v6.0";
+    private static final String XIPV6_XIP_NS = "http://preservica.com/XIP/v6.0";
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
 
     private Properties userDetails;
 
@@ -94,11 +98,12 @@ public class CSV2Metadata {
         options.addOption( "hp", "header-prefix", true, "the column header prefix in addition to dc & dcterms" );
         options.addOption( "p", "prefix", true, "the root element namespace prefix, defaults to dc" );
         options.addOption( "u", "user", true, "the property file with Preservica username & password" );
+        options.addOption( "up", "update", false, "replace existing Preservica dublin core metadata if it differs from the csv" );
         options.addOption( "h", "help", false, "print this message" );
 
         HelpFormatter formatter = new HelpFormatter();
 
-        final String cmdLine = "csv2dc.cmd -i file.csv -o output [-c \"file name column\"] [-r root] [-p prefix] [-n namespace]  [-hp header-prefix]";
+        final String cmdLine = "csv2dc.cmd -i file.csv -o output [-c \"file name column\"] [-r root] [-p prefix] [-n namespace]  [-hp header-prefix] [-up]";
 
         String DEFAULT_FILE_COLUMN = "filename";
         String DEFAULT_ROOT_ELEMENT = "dc";
@@ -109,6 +114,7 @@ public class CSV2Metadata {
         String rootPrefix;
         String headerPrefix = null;
         String rootNamespace;
+        boolean updateExisting = false;
         File inputFile = null;
         File outputDir = null;
 
@@ -139,6 +145,10 @@ public class CSV2Metadata {
                 headerPrefix  = line.getOptionValue( "hp" );
             }
 
+            if ( line.hasOption( "up" ) ) {
+                updateExisting = true;
+            }
+
             if ( line.hasOption( "p" ) ) {
                 rootPrefix = line.getOptionValue( "p" );
             } else {
@@ -186,7 +196,7 @@ public class CSV2Metadata {
 
             try {
                 CSV2Metadata metadata = new CSV2Metadata(userDetails);
-                int files = metadata.parse(inputFile, outputDir, fileColumn, rootElement, rootPrefix, rootNamespace, headerPrefix);
+                int files = metadata.parse(inputFile, outputDir, fileColumn, rootElement, rootPrefix, rootNamespace, headerPrefix, updateExisting);
                 System.out.println(String.format("Created %d XML files in %s", files, outputDir.getName()));
             } catch (Exception e) {
                 formatter.printHelp( cmdLine, options  );
@@ -226,9 +236,10 @@ public class CSV2Metadata {
      *
      * @param csvDocument The CSV file
      * @param folder      The output folder
+     * @param updateExisting  Replace existing Preservica metadata which differs from the csv
      * @throws Exception
      */
-    private int parse(File csvDocument, File folder, String filenameColumn, String rootElement, String rootPrefix, String rootNamespace, String headerPrefix) throws Exception {
+    private int parse(File csvDocument, File folder, String filenameColumn, String rootElement, String rootPrefix, String rootNamespace, String headerPrefix, boolean updateExisting) throws Exception {
 
         final String DC_NS = "xmlns:dc=\"http://purl.org/dc/elements/1.1/\"";
         final String DCTERMS_NS = "xmlns:dcterms=\"http://purl.org/dc/terms/\"";
@@ -338,6 +349,15 @@ public class CSV2Metadata {
                             org.w3c.dom.Document dublinCoreDocument = getDocumentFromFile(xmlFile);
                             xipDocument = addDublinCoreV5(dublinCoreDocument, xipDocument, rootNamespace);
                             updateEntityV5(xipDocument, filerefId);
+                        } else if (updateExisting) {
+                            org.w3c.dom.Document dublinCoreDocument = getDocumentFromFile(xmlFile);
+                            Element existing = getDublinCoreV5(xipDocument, rootNamespace);
+                            if (!getCanonicalHash(existing).equals(getCanonicalHash(dublinCoreDocument.getDocumentElement()))) {
+                                xipDocument = replaceDublinCoreV5(dublinCoreDocument, xipDocument, rootNamespace);
+                                updateEntityV5(xipDocument, filerefId);
+                            } else {
+                                System.out.println("Entity: " + filerefId + " Dublin Core metadata is unchanged. Ignoring....");
+                            }
                         } else {
                             System.out.println("Entity: " + filerefId + " already has Dublin Core metadata. Ignoring....");
                         }
@@ -357,6 +377,17 @@ public class CSV2Metadata {
                         if (!hasDublinCoreV6(xipDocument, rootNamespace)) {
                             org.w3c.dom.Document dublinCoreDocument = getDocumentFromFile(xmlFile);
                             updateEntityV6(dublinCoreDocument, assetId);
+                        } else if (updateExisting) {
+                            org.w3c.dom.Document dublinCoreDocument = getDocumentFromFile(xmlFile);
+                            String fragmentUrl = getFragmentV6(xipDocument, rootNamespace).getTextContent().trim();
+                            Element existing = getFragmentContentV6(fragmentUrl);
+                            if (existing == null) {
+                                System.out.println("Failed to fetch the Dublin Core metadata of asset: " + assetId);
+                            } else if (!getCanonicalHash(existing).equals(getCanonicalHash(dublinCoreDocument.getDocumentElement()))) {
+                                replaceFragmentV6(dublinCoreDocument, fragmentUrl, assetId, rootNamespace);
+                            } else {
+                                System.out.println("Asset: " + assetId + " Dublin Core metadata is unchanged. Ignoring....");
+                            }
                         } else {
                             System.out.println("Asset: " + assetId + " already has Dublin Core metadata. Ignoring....");
                         }
@@ -417,6 +448,68 @@ public class CSV2Metadata {
     }
 
 
+    /**
+     *  Replace an existing Preservica v6 metadata fragment with the dublin core metadata
+     *
+     *
+     * @param document
+     * @param fragmentUrl
+     * @param entityRef
+     * @param namespace
+     */
+    private void replaceFragmentV6(Document document, String fragmentUrl, String entityRef, String namespace) {
+        CloseableHttpClient client = getClient();
+        CloseableHttpResponse response = null;
+        try {
+
+            HttpPut putRequest = new HttpPut(fragmentUrl);
+            putRequest.setHeader("Authorization", getHeader());
+            putRequest.setHeader("Content-Type", "application/xml");
+
+            document.normalize();
+
+            // the fragment is wrapped in a MetadataContainer which identifies it
+            Document container = factory.newDocumentBuilder().newDocument();
+            Element containerElement = container.createElementNS(XIPV6_XIP_NS, "MetadataContainer");
+            containerElement.setAttribute("schema", namespace);
+            container.appendChild(containerElement);
+            Element refElement = container.createElementNS(XIPV6_XIP_NS, "Ref");
+            refElement.setTextContent(fragmentUrl.substring(fragmentUrl.lastIndexOf('/') + 1));
+            containerElement.appendChild(refElement);
+            Element entityElement = container.createElementNS(XIPV6_XIP_NS, "Entity");
+            entityElement.setTextContent(entityRef.trim());
+            containerElement.appendChild(entityElement);
+            Element contentElement = container.createElementNS(XIPV6_XIP_NS, "Content");
+            contentElement.appendChild(container.importNode(document.getDocumentElement(), true));
+            containerElement.appendChild(contentElement);
+
+            DOMSource domSource = new DOMSource(container);
+            StringWriter writer = new StringWriter();
+            StreamResult result = new StreamResult(writer);
+            Transformer transformer = transformerFactory.newTransformer();
+            transformer.transform(domSource, result);
+
+            StringEntity se = new StringEntity(writer.toString(), "UTF-8");
+            putRequest.setEntity(se);
+            response = client.execute(putRequest);
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                log.info("Replaced metadata of object: " + entityRef);
+            }
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                log.error("Failed to replace metadata");
+                log.error(response.getStatusLine().toString());
+            }
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+            throw new RuntimeException(ex);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+            IOUtils.closeQuietly(response);
+        }
+        return;
+    }
+
+
 
     /**
      *  Update the Preservica File entity with the dublin core metadata
@@ -493,6 +586,30 @@ public class CSV2Metadata {
     }
 
 
+    /**
+     * Replace the dublin core metadata of an existing file entity
+     *
+     * @param  dublinCore
+     * @param  xipDocument
+     * @return Document
+     */
+    private Document replaceDublinCoreV5(Document dublinCore, Document xipDocument, String namespace) {
+
+        Element metadataElement = getMetadataV5(xipDocument, namespace);
+
+        // remove the old dublin core
+        while (metadataElement.hasChildNodes()) {
+            metadataElement.removeChild(metadataElement.getFirstChild());
+        }
+
+        // add the new dublin core to it.
+        Node dublinCoreNode = xipDocument.importNode(dublinCore.getDocumentElement(), true);
+        metadataElement.appendChild(dublinCoreNode);
+
+        return xipDocument;
+    }
+
+
     /**
      * Create a org.w3c.dom.Document from the dublin Core Metadata file
      *
@@ -511,6 +628,18 @@ public class CSV2Metadata {
     }
 
     private boolean hasDublinCoreV6(Document document, String namespace) {
+        return getFragmentV6(document, namespace) != null;
+    }
+
+    /**
+     * Find the metadata fragment of a v6 asset with the same namespace.
+     * The fragment text is the URL of the metadata
+     *
+     * @param document
+     * @param namespace
+     * @return Node or null
+     */
+    private Node getFragmentV6(Document document, String namespace) {
 
         NodeList metadataList = document.getElementsByTagNameNS(XIPV6_NS, "Metadata");
         for (int i = 0; i < metadataList.getLength(); i++) {
@@ -523,13 +652,13 @@ public class CSV2Metadata {
                     Node attribute = namedNodeMap.getNamedItem("schema");
                     if (attribute != null) {
                         if (attribute.getNodeValue().equals(namespace)) {
-                            return true;
+                            return fragmentNode;
                         }
                     }
                 }
             }
         }
-        return false;
+        return null;
     }
 
     /**
@@ -542,6 +671,17 @@ public class CSV2Metadata {
      * @return true
      */
     private boolean hasDublinCoreV5(Document document, String namespace) {
+        return getMetadataV5(document, namespace) != null;
+    }
+
+    /**
+     * Find the generic metadata element of a v5 entity with the same namespace.
+     *
+     * @param document
+     * @param namespace
+     * @return Element or null
+     */
+    private Element getMetadataV5(Document document, String namespace) {
 
         NodeList list = document.getElementsByTagNameNS(XIP_NS, "Metadata");
         for (int i = 0; i < list.getLength(); i++) {
@@ -551,12 +691,111 @@ public class CSV2Metadata {
                 Node attribute = namedNodeMap.getNamedItem("schemaURI");
                 if (attribute != null) {
                     if (attribute.getNodeValue().equals(namespace)) {
-                        return true;
+                        return (Element)node;
                     }
                 }
             }
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * Get the dublin core element held in the generic metadata of a v5 entity
+     *
+     * @param document
+     * @param namespace
+     * @return Element or null
+     */
+    private Element getDublinCoreV5(Document document, String namespace) {
+        Element metadataElement = getMetadataV5(document, namespace);
+        if (metadataElement != null) {
+            return getFirstChildElement(metadataElement);
+        }
+        return null;
+    }
+
+    /**
+     * Get the first element child of a node, ignoring text and comments
+     *
+     * @param node
+     * @return Element or null
+     */
+    private Element getFirstChildElement(Node node) {
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                return (Element)children.item(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create a SHA-256 hash of a normalized canonical form of an element so two
+     * metadata documents can be compared regardless of namespace prefixes,
+     * attribute order or formatting whitespace.
+     *
+     * @param element
+     * @return String hex encoded hash, empty if there is no element
+     */
+    private String getCanonicalHash(Element element) {
+        if (element == null) {
+            return "";
+        }
+        StringBuilder canonical = new StringBuilder();
+        canonicalize(element, canonical);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(canonical.toString().getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Write the canonical form of an element, its sorted attributes and its
+     * whitespace normalized text and child elements.
+     *
+     * @param element
+     * @param canonical
+     */
+    private void canonicalize(Element element, StringBuilder canonical) {
+        canonical.append("<{").append(element.getNamespaceURI()).append("}").append(element.getLocalName());
+
+        TreeMap<String, String> attributes = new TreeMap<>();
+        NamedNodeMap namedNodeMap = element.getAttributes();
+        for (int i = 0; i < namedNodeMap.getLength(); i++) {
+            Node attribute = namedNodeMap.item(i);
+            if (!XMLNS_NS.equals(attribute.getNamespaceURI())) {
+                String name = String.format("{%s}%s", attribute.getNamespaceURI(), attribute.getLocalName());
+                attributes.put(name, attribute.getNodeValue().trim());
+            }
+        }
+        for (String name : attributes.keySet()) {
+            canonical.append(" ").append(name).append("=\"").append(attributes.get(name)).append("\"");
+        }
+        canonical.append(">");
+
+        StringBuilder text = new StringBuilder();
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                canonical.append(text.toString().trim().replaceAll("\\s+", " "));
+                text.setLength(0);
+                canonicalize((Element)child, canonical);
+            } else if ((child.getNodeType() == Node.TEXT_NODE) || (child.getNodeType() == Node.CDATA_SECTION_NODE)) {
+                text.append(child.getNodeValue());
+            }
+        }
+        canonical.append(text.toString().trim().replaceAll("\\s+", " "));
+        canonical.append("</>");
     }
 
     private String getHeader() {
@@ -598,6 +837,42 @@ public class CSV2Metadata {
         return null;
     }
 
+    /**
+     *  Get the content of a Preservica v6 metadata fragment
+     *
+     * @param fragmentUrl
+     * @return the root Element of the fragment content
+     */
+    private Element getFragmentContentV6(String fragmentUrl) {
+
+        CloseableHttpClient client = getClient();
+        CloseableHttpResponse response = null;
+        try {
+            HttpGet httpGet = new HttpGet(fragmentUrl);
+            httpGet.setHeader("Authorization", getHeader());
+            response = client.execute(httpGet);
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                Document document = getDocument(response);
+                NodeList contentList = document.getElementsByTagNameNS(XIPV6_XIP_NS, "Content");
+                if (contentList.getLength() > 0) {
+                    return getFirstChildElement(contentList.item(0));
+                }
+                return null;
+            }
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                log.error("Failed to get metadata fragment");
+                log.error(response.getStatusLine().toString());
+            }
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+            throw new RuntimeException(ex);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+            IOUtils.closeQuietly(response);
+        }
+        return null;
+    }
+
     /**
      *  Get a Preservica v5 entity by its reference
      *